@@ -0,0 +1,213 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Routes records by partition key and spreads hot keys across several shards.
+ * It is used in place of hashKeyIterator.next() when records have a partition
+ * key:
+ * <p>
+ *
+ * <pre>
+ * putRecsReqEntry.setPartitionKey(partitionKey);
+ * putRecsReqEntry.setExplicitHashKey(hotKeyRouter.explicitHashKey(partitionKey));
+ * </pre>
+ * <p>
+ * Key frequencies are tracked with a Space-Saving sketch that keeps a fixed
+ * number of counters, grouped by count so that the smallest counter is found in
+ * O(log n). A key that replaces an evicted key inherits its count as an error
+ * bound. A key is hot while its guaranteed count (count minus error) is at or
+ * above the configured share of the recent records. Counts are halved
+ * periodically so that keys which cool down stop being hot. The sketch cannot
+ * tell apart shares below 1 / capacity, so smaller hot key shares are refused.
+ * <p>
+ * A cold key gets the Hash Key Kinesis would compute from the partition key
+ * (MD5). A hot key is spread round robin across N equal sub-ranges of the Hash
+ * Key space, at the same offset within each sub-range. The partition key of the
+ * record is not changed, so consumers can regroup records by partition key.
+ * {@link #getHotKeys()} returns the keys that are currently spread. Records of
+ * a hot key are not kept in order across its sub-ranges.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class HotKeyRouter {
+
+	private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+	private final int capacity;
+	private final double hotKeyShare;
+	private final int subRanges;
+	private final long decayWindow;
+
+	private final Map<String, Counter> counters = new HashMap<String, Counter>();
+	// keys grouped by count, to find the key with the smallest count quickly
+	private final TreeMap<Long, Set<String>> keysByCount = new TreeMap<Long, Set<String>>();
+	private final Map<String, Integer> saltCursors = new HashMap<String, Integer>();
+	private long totalCount = 0;
+
+	private static class Counter {
+		private long count;
+		private long error;
+
+		Counter(long count, long error) {
+			this.count = count;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * @param capacity    number of keys tracked by the sketch
+	 * @param hotKeyShare share of records, between 1 / capacity and 1, at which
+	 *                    a key is hot
+	 * @param subRanges   number of Hash Key sub-ranges a hot key is spread
+	 *                    across, usually not more than the number of shards
+	 */
+	public HotKeyRouter(int capacity, double hotKeyShare, int subRanges) {
+		if (capacity < 1 || hotKeyShare > 1 || subRanges < 1) {
+			throw new IllegalArgumentException("Invalid hot key router configuration");
+		}
+		if (hotKeyShare < 1.0 / capacity) {
+			throw new IllegalArgumentException(
+					"Hot key share must be at least 1 / capacity (" + 1.0 / capacity + "), got " + hotKeyShare);
+		}
+		this.capacity = capacity;
+		this.hotKeyShare = hotKeyShare;
+		this.subRanges = subRanges;
+		// enough records for shares to be meaningful before the counts are halved
+		this.decayWindow = Math.max(10000L, (long) (capacity / hotKeyShare));
+	}
+
+	/**
+	 * Counts the partition key and returns the explicit Hash Key for the record.
+	 *
+	 * @param partitionKey
+	 * @return explicit Hash Key
+	 */
+	public synchronized String explicitHashKey(String partitionKey) {
+		observe(partitionKey);
+		BigInteger hashKey = md5(partitionKey);
+		if (!isHot(partitionKey)) {
+			saltCursors.remove(partitionKey);
+			return hashKey.toString();
+		}
+		int salt = saltCursors.getOrDefault(partitionKey, 0);
+		saltCursors.put(partitionKey, (salt + 1) % subRanges);
+		BigInteger offset = HASH_KEY_SPACE.multiply(BigInteger.valueOf(salt)).divide(BigInteger.valueOf(subRanges));
+		return hashKey.add(offset).mod(HASH_KEY_SPACE).toString();
+	}
+
+	/**
+	 * Returns the keys that are currently hot and the number of Hash Key
+	 * sub-ranges each of them is spread across.
+	 *
+	 * @return map of partition key to number of sub-ranges
+	 */
+	public synchronized Map<String, Integer> getHotKeys() {
+		Map<String, Integer> hotKeys = new HashMap<String, Integer>();
+		for (String key : counters.keySet()) {
+			if (isHot(key)) {
+				hotKeys.put(key, subRanges);
+			}
+		}
+		return hotKeys;
+	}
+
+	/**
+	 * Returns the Hash Key Kinesis computes for a partition key.
+	 *
+	 * @param partitionKey
+	 * @return Hash Key as a decimal string
+	 */
+	public static String hashKeyFor(String partitionKey) {
+		return md5(partitionKey).toString();
+	}
+
+	private boolean isHot(String key) {
+		// with too few records every key would look hot
+		if (totalCount < capacity) {
+			return false;
+		}
+		Counter counter = counters.get(key);
+		return counter != null && counter.count - counter.error >= hotKeyShare * totalCount;
+	}
+
+	/**
+	 * Space-Saving update: a new key replaces the key with the smallest count
+	 * and inherits that count as its error, so counts never underestimate.
+	 */
+	private void observe(String key) {
+		Counter counter = counters.get(key);
+		if (counter != null) {
+			removeFromBucket(key, counter.count);
+			counter.count++;
+		} else if (counters.size() < capacity) {
+			counter = new Counter(1, 0);
+			counters.put(key, counter);
+		} else {
+			Map.Entry<Long, Set<String>> smallest = keysByCount.firstEntry();
+			String minKey = smallest.getValue().iterator().next();
+			long minCount = smallest.getKey();
+			removeFromBucket(minKey, minCount);
+			counters.remove(minKey);
+			saltCursors.remove(minKey);
+			counter = new Counter(minCount + 1, minCount);
+			counters.put(key, counter);
+		}
+		keysByCount.computeIfAbsent(counter.count, k -> new LinkedHashSet<String>()).add(key);
+		totalCount++;
+		if (totalCount >= decayWindow) {
+			decay();
+		}
+	}
+
+	private void removeFromBucket(String key, long count) {
+		Set<String> bucket = keysByCount.get(count);
+		bucket.remove(key);
+		if (bucket.isEmpty()) {
+			keysByCount.remove(count);
+		}
+	}
+
+	private void decay() {
+		keysByCount.clear();
+		Iterator<Map.Entry<String, Counter>> it = counters.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Counter> entry = it.next();
+			Counter counter = entry.getValue();
+			counter.count /= 2;
+			counter.error /= 2;
+			if (counter.count == 0) {
+				saltCursors.remove(entry.getKey());
+				it.remove();
+			} else {
+				keysByCount.computeIfAbsent(counter.count, k -> new LinkedHashSet<String>()).add(entry.getKey());
+			}
+		}
+		totalCount /= 2;
+	}
+
+	private static BigInteger md5(String partitionKey) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return new BigInteger(1, md.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+
+}
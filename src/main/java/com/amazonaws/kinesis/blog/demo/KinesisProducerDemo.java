@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
@@ -16,7 +17,6 @@ import com.amazonaws.services.kinesis.model.PutRecordsRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
 import com.amazonaws.services.kinesis.model.PutRecordsResult;
 import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 /**
@@ -44,8 +44,10 @@ public class KinesisProducerDemo {
 
 		/**
 		 * Step 2: Create a circular list of Hash Keys which gives a round-robin effect.
+		 * The selector skips shards that are throttling and retries rejected records
+		 * on healthy shards.
 		 */
-		Iterator<String> hashKeysIterator = Iterables.cycle(hashKeysList).iterator();
+		Iterator<String> hashKeysIterator = new ShardAwareHashKeySelector(hashKeysList);
 
 		/**
 		 * Step 3: Write records to Kinesis using PutRecords
@@ -60,6 +62,34 @@ public class KinesisProducerDemo {
 		List<String> sampleRecord = getSampleRecords(1);
 		writeSingleMessageToKinesis(sampleRecord.get(0), streamName, kinesis, hashKeysIterator);
 
+		/**
+		 * Write records from a continuous source using linger-based flushing. A
+		 * batch is written when it is full or when its oldest record has waited
+		 * for the linger time (between 50 ms and 1 second here).
+		 */
+		LingeringKinesisProducer lingeringProducer = new LingeringKinesisProducer(kinesis, streamName,
+				hashKeysIterator, 50, 1000);
+		for (String record : getSampleRecords(2000)) {
+			lingeringProducer.addRecord(record);
+		}
+		lingeringProducer.close();
+
+		/**
+		 * Write records that have a partition key. Keys with more than 5% of the
+		 * recent records are spread across up to 8 shards; other keys are routed
+		 * as Kinesis would route them. Here a customer id is derived from the
+		 * unique id of the sample record, so that customer-0 gets every tenth
+		 * record.
+		 */
+		HotKeyRouter hotKeyRouter = new HotKeyRouter(1000, 0.05, Math.min(8, hashKeysList.size()));
+		Function<String, String> customerIdExtractor = record -> {
+			int uniqueId = Integer.parseInt(record.split("\"unique_id\": \"")[1].split("\"")[0]);
+			return uniqueId % 10 == 0 ? "customer-0" : "customer-" + uniqueId;
+		};
+		writeKeyedMessagesToKinesis(getSampleRecords(20000), customerIdExtractor, hotKeyRouter, streamName, kinesis,
+				false);
+		System.out.println("Hot keys: " + hotKeyRouter.getHotKeys());
+
 	}
 
 	/**
@@ -158,19 +188,88 @@ public class KinesisProducerDemo {
 	 */
 	public static void writeMessagesToKinesis(List<String> recordList, String streamName, AmazonKinesis kinesis,
 			Iterator<String> hashKeyIterator) {
-		PutRecordsRequest putRecsReq = new PutRecordsRequest();
-		List<PutRecordsRequestEntry> putRecReqEntryList = new ArrayList<PutRecordsRequestEntry>();
-		PutRecordsResult putRecsRes = new PutRecordsResult();
+		writeMessagesToKinesis(recordList, streamName, kinesis, hashKeyIterator, false);
+	}
+
+	/**
+	 * Same as {@link #writeMessagesToKinesis(List, String, AmazonKinesis, Iterator)}.
+	 * When chunkLargeRecords is set, messages larger than 1 MiB are split into
+	 * chunks written to the same shard instead of failing the whole request. Use
+	 * {@link MessageReassembler} to rebuild them on the consumer side.
+	 *
+	 * @param recordList
+	 * @param streamName
+	 * @param kinesis
+	 * @param hashKeyIterator
+	 * @param chunkLargeRecords
+	 */
+	public static void writeMessagesToKinesis(List<String> recordList, String streamName, AmazonKinesis kinesis,
+			Iterator<String> hashKeyIterator, boolean chunkLargeRecords) {
+		// a shard-aware selector learns from the results and moves retries to healthy shards
+		final ShardAwareHashKeySelector shardSelector = hashKeyIterator instanceof ShardAwareHashKeySelector
+				? (ShardAwareHashKeySelector) hashKeyIterator
+				: null;
 		List<List<String>> listofSmallerLists = Lists.partition(recordList, 500);
 		for (List<String> smallerList : listofSmallerLists) {
-			putRecReqEntryList.clear();
+			List<PutRecordsRequestEntry> messageEntryList = new ArrayList<PutRecordsRequestEntry>();
 			for (String message : smallerList) {
-				PutRecordsRequestEntry putRecsReqEntry = new PutRecordsRequestEntry();
-				putRecsReqEntry.setData(ByteBuffer.wrap(message.getBytes()));
-				putRecsReqEntry.setPartitionKey("reqiredButHasNoEffect-when-setExplicitHashKey-isUsed");
-				putRecsReqEntry.setExplicitHashKey(hashKeyIterator.next());
-				putRecReqEntryList.add(putRecsReqEntry);
+				// a message larger than 1 MiB becomes several chunks written to the same shard
+				messageEntryList.addAll(MessageChunker.toRequestEntries(message.getBytes(),
+						"reqiredButHasNoEffect-when-setExplicitHashKey-isUsed", hashKeyIterator.next(),
+						chunkLargeRecords));
 			}
+			writeEntriesToKinesis(messageEntryList, streamName, kinesis, shardSelector);
+		}
+	}
+
+	/**
+	 * This method writes messages that have a partition key, e.g. a customer id,
+	 * using PutRecords API. The partition key is extracted from each message and
+	 * kept on the record; the explicit Hash Key comes from the HotKeyRouter, which
+	 * spreads keys that receive a large share of the records across several
+	 * shards. Retries and large records are handled as in
+	 * {@link #writeMessagesToKinesis(List, String, AmazonKinesis, Iterator, boolean)},
+	 * except that rejected records are retried with the same Hash Key.
+	 *
+	 * @param recordList
+	 * @param keyExtractor
+	 * @param hotKeyRouter
+	 * @param streamName
+	 * @param kinesis
+	 * @param chunkLargeRecords
+	 */
+	public static void writeKeyedMessagesToKinesis(List<String> recordList, Function<String, String> keyExtractor,
+			HotKeyRouter hotKeyRouter, String streamName, AmazonKinesis kinesis, boolean chunkLargeRecords) {
+		List<List<String>> listofSmallerLists = Lists.partition(recordList, 500);
+		for (List<String> smallerList : listofSmallerLists) {
+			List<PutRecordsRequestEntry> messageEntryList = new ArrayList<PutRecordsRequestEntry>();
+			for (String message : smallerList) {
+				String partitionKey = keyExtractor.apply(message);
+				messageEntryList.addAll(MessageChunker.toRequestEntries(message.getBytes(), partitionKey,
+						hotKeyRouter.explicitHashKey(partitionKey), chunkLargeRecords));
+			}
+			writeEntriesToKinesis(messageEntryList, streamName, kinesis, null);
+		}
+	}
+
+	/**
+	 * Writes request entries with PutRecords and retries the rejected records.
+	 * When a shard-aware selector is given, it learns from the results and
+	 * assigns new Hash Keys to rejected records.
+	 *
+	 * @param messageEntryList
+	 * @param streamName
+	 * @param kinesis
+	 * @param shardSelector
+	 */
+	private static void writeEntriesToKinesis(List<PutRecordsRequestEntry> messageEntryList, String streamName,
+			AmazonKinesis kinesis, ShardAwareHashKeySelector shardSelector) {
+		PutRecordsRequest putRecsReq = new PutRecordsRequest();
+		List<PutRecordsRequestEntry> putRecReqEntryList = new ArrayList<PutRecordsRequestEntry>();
+		PutRecordsResult putRecsRes = new PutRecordsResult();
+		// chunks and large messages can exceed 500 records or 5 MiB per request
+		for (List<PutRecordsRequestEntry> requestEntryList : MessageChunker.partitionRequests(messageEntryList)) {
+			putRecReqEntryList = requestEntryList;
 			try {
 				putRecsReq.setStreamName(streamName);
 				putRecsReq.setRecords(putRecReqEntryList);
@@ -186,14 +285,26 @@ public class KinesisProducerDemo {
 					for (int i = 0; i < putRecsResEntryList.size(); i++) {
 						final PutRecordsRequestEntry putRecordReqEntry = putRecReqEntryList.get(i);
 						final PutRecordsResultEntry putRecordsResEntry = putRecsResEntryList.get(i);
+						if (shardSelector != null) {
+							shardSelector.recordOutcome(putRecordReqEntry, putRecordsResEntry);
+						}
 						if (putRecordsResEntry.getErrorCode() != null) {
 							failedRecordsList.add(putRecordReqEntry);
 						}
 					}
+					if (shardSelector != null) {
+						for (PutRecordsRequestEntry failedRecord : failedRecordsList) {
+							// chunks of a message must stay on the same shard
+							if (!MessageChunker.isChunk(failedRecord.getData())) {
+								shardSelector.steerRetry(failedRecord);
+							}
+						}
+					}
 					putRecReqEntryList = failedRecordsList;
 					putRecsReq.setRecords(putRecReqEntryList);
 					putRecsRes = kinesis.putRecords(putRecsReq);
 				} // end of while loop
+				System.out.printf("%d records inserted to Kinesis Stream successfully.\n", requestEntryList.size());
 			} catch (Exception e) {
 				System.out.println("Exception in Kinesis Batch Insert: " + e.getMessage());
 			}
@@ -0,0 +1,258 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+
+/**
+ * <p>
+ * Producer for continuous (non-file) sources. Records are buffered and written
+ * to Kinesis using PutRecords whenever one of the following happens first:
+ * the buffer holds a full batch (500 records or 5 MiB), or the oldest buffered
+ * record has waited for the linger time.
+ * <p>
+ * The linger time adapts to the observed load. It is set to the time it takes
+ * to receive a full batch at the current arrival rate, bounded by the minimum
+ * and maximum linger. With a busy source the batch fills before the deadline;
+ * with a quiet source records wait at most the maximum linger.
+ * <p>
+ * Batches can be written by the thread that adds a record and by the
+ * background flusher at the same time, so calls to the Hash Key iterator are
+ * synchronized by this class. A ShardAwareHashKeySelector is used as is since
+ * it is already thread-safe.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class LingeringKinesisProducer {
+
+	private static final int MAX_RECORDS_PER_BATCH = 500;
+	private static final long MAX_BYTES_PER_BATCH = 5L * 1024 * 1024;
+	// Weight of the latest sample in the arrival rate moving average.
+	private static final double RATE_SMOOTHING = 0.2;
+
+	private final AmazonKinesis kinesis;
+	private final String streamName;
+	private final Iterator<String> hashKeyIterator;
+	private final long minLingerMillis;
+	private final long maxLingerMillis;
+	private final boolean chunkLargeRecords;
+
+	private final Object lock = new Object();
+	private final List<String> buffer = new ArrayList<String>();
+	private long bufferedBytes = 0;
+	private long firstRecordMillis = 0;
+	private long lastFlushMillis = System.currentTimeMillis();
+	private double recordsPerMilli = 0;
+	private long lingerMillis;
+	private boolean closed = false;
+	private final Thread flusher;
+
+	/**
+	 * Iterator wrapper that makes next() safe to call from several threads.
+	 */
+	private static class SynchronizedIterator implements Iterator<String> {
+		private final Iterator<String> delegate;
+
+		SynchronizedIterator(Iterator<String> delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public synchronized boolean hasNext() {
+			return delegate.hasNext();
+		}
+
+		@Override
+		public synchronized String next() {
+			return delegate.next();
+		}
+	}
+
+	/**
+	 * @param kinesis
+	 * @param streamName
+	 * @param hashKeyIterator
+	 * @param minLingerMillis lower bound for the adaptive linger time
+	 * @param maxLingerMillis upper bound for the adaptive linger time, i.e. the
+	 *                        maximum latency added to a record by buffering
+	 */
+	public LingeringKinesisProducer(AmazonKinesis kinesis, String streamName, Iterator<String> hashKeyIterator,
+			long minLingerMillis, long maxLingerMillis) {
+		this(kinesis, streamName, hashKeyIterator, minLingerMillis, maxLingerMillis, false);
+	}
+
+	/**
+	 * @param kinesis
+	 * @param streamName
+	 * @param hashKeyIterator
+	 * @param minLingerMillis   lower bound for the adaptive linger time
+	 * @param maxLingerMillis   upper bound for the adaptive linger time, i.e.
+	 *                          the maximum latency added to a record by
+	 *                          buffering
+	 * @param chunkLargeRecords split records larger than 1 MiB into chunks
+	 *                          written to the same shard, see
+	 *                          {@link MessageChunker}
+	 */
+	public LingeringKinesisProducer(AmazonKinesis kinesis, String streamName, Iterator<String> hashKeyIterator,
+			long minLingerMillis, long maxLingerMillis, boolean chunkLargeRecords) {
+		if (minLingerMillis < 0 || maxLingerMillis < minLingerMillis) {
+			throw new IllegalArgumentException("Linger bounds must satisfy 0 <= min <= max");
+		}
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+		// ShardAwareHashKeySelector is already thread-safe and must stay visible to the writer
+		this.hashKeyIterator = hashKeyIterator instanceof ShardAwareHashKeySelector ? hashKeyIterator
+				: new SynchronizedIterator(hashKeyIterator);
+		this.minLingerMillis = minLingerMillis;
+		this.maxLingerMillis = maxLingerMillis;
+		this.chunkLargeRecords = chunkLargeRecords;
+		this.lingerMillis = maxLingerMillis;
+		this.flusher = new Thread(this::runFlusher, "kinesis-linger-flusher-" + streamName);
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Adds a record to the buffer. If the record completes a batch, the batch
+	 * is written on the calling thread, which also gives back-pressure to a
+	 * source that is faster than the stream.
+	 *
+	 * @param record
+	 */
+	public void addRecord(String record) {
+		List<String> fullBatch = null;
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Producer is closed");
+			}
+			long recordBytes = record.getBytes().length;
+			if (!buffer.isEmpty() && bufferedBytes + recordBytes > MAX_BYTES_PER_BATCH) {
+				fullBatch = drainBuffer();
+			}
+			if (buffer.isEmpty()) {
+				firstRecordMillis = System.currentTimeMillis();
+				// wake up the flusher so that it waits on the new deadline
+				lock.notifyAll();
+			}
+			buffer.add(record);
+			bufferedBytes += recordBytes;
+			if (fullBatch == null && buffer.size() == MAX_RECORDS_PER_BATCH) {
+				fullBatch = drainBuffer();
+			}
+		}
+		if (fullBatch != null) {
+			writeBatch(fullBatch);
+		}
+	}
+
+	/**
+	 * Writes all buffered records to Kinesis regardless of the linger deadline.
+	 */
+	public void flush() {
+		List<String> batch;
+		synchronized (lock) {
+			batch = drainBuffer();
+		}
+		if (!batch.isEmpty()) {
+			writeBatch(batch);
+		}
+	}
+
+	/**
+	 * Flushes the remaining records and stops the background flusher.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * @return the current linger time in milliseconds
+	 */
+	public long getLingerMillis() {
+		synchronized (lock) {
+			return lingerMillis;
+		}
+	}
+
+	private void runFlusher() {
+		while (true) {
+			List<String> batch;
+			long expiredLinger;
+			synchronized (lock) {
+				try {
+					while (!closed) {
+						if (buffer.isEmpty()) {
+							lock.wait();
+							continue;
+						}
+						long waitMillis = firstRecordMillis + lingerMillis - System.currentTimeMillis();
+						if (waitMillis <= 0) {
+							break;
+						}
+						lock.wait(waitMillis);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (closed) {
+					return;
+				}
+				expiredLinger = lingerMillis;
+				batch = drainBuffer();
+			}
+			System.out.printf("Linger of %d ms expired, flushing %d records.\n", expiredLinger, batch.size());
+			writeBatch(batch);
+		}
+	}
+
+	/**
+	 * Writes a batch and logs any exception, so that a failed write does not
+	 * stop the background flusher.
+	 */
+	private void writeBatch(List<String> batch) {
+		try {
+			KinesisProducerDemo.writeMessagesToKinesis(batch, streamName, kinesis, hashKeyIterator, chunkLargeRecords);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			System.out.printf("Exception while writing %d buffered records to Kinesis.\n", batch.size());
+		}
+	}
+
+	/**
+	 * Takes the buffered records and updates the arrival rate and linger time.
+	 * Must be called while holding the lock.
+	 */
+	private List<String> drainBuffer() {
+		List<String> batch = new ArrayList<String>(buffer);
+		buffer.clear();
+		bufferedBytes = 0;
+		long now = System.currentTimeMillis();
+		if (!batch.isEmpty()) {
+			long elapsedMillis = Math.max(1, now - lastFlushMillis);
+			double sample = (double) batch.size() / elapsedMillis;
+			recordsPerMilli = recordsPerMilli == 0 ? sample
+					: RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * recordsPerMilli;
+			long timeToFillBatch = (long) (MAX_RECORDS_PER_BATCH / recordsPerMilli);
+			lingerMillis = Math.max(minLingerMillis, Math.min(maxLingerMillis, timeToFillBatch));
+			lastFlushMillis = now;
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,134 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+
+/**
+ * <p>
+ * Utility class to split messages larger than the Kinesis record limit into
+ * ordered chunks, and to group request entries into PutRecords requests that
+ * stay within the request limits.
+ * <p>
+ * Kinesis Tip: Each record can be as large as 1 MiB and each PutRecords request
+ * up to 5 MiB and 500 records, including partition keys.
+ * <p>
+ * Every chunk starts with a header: a 4 byte marker, the 16 byte message id, the
+ * chunk index and the chunk count (4 bytes each). The marker starts with a NUL
+ * byte and ends with a format version, so text records do not match it. All
+ * chunks of a message use the same explicit Hash Key, so they are written to
+ * the same shard. Messages that fit in one record are written unchanged,
+ * without a header. Use
+ * {@link MessageReassembler} on the consumer side to rebuild chunked messages.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class MessageChunker {
+
+	public static final int MAX_RECORD_BYTES = 1024 * 1024;
+	public static final int MAX_REQUEST_BYTES = 5 * 1024 * 1024;
+	public static final int MAX_RECORDS_PER_REQUEST = 500;
+
+	// NUL, 'K', 'C', version 1
+	static final int CHUNK_MARKER = 0x004B4301;
+	static final int HEADER_BYTES = 4 + 16 + 4 + 4;
+
+	private MessageChunker() {
+	}
+
+	/**
+	 * Creates the request entries for a message. A message larger than the
+	 * record limit is split into chunks when chunkLargeRecords is set, otherwise
+	 * it is returned as a single entry.
+	 *
+	 * @param data
+	 * @param partitionKey
+	 * @param explicitHashKey
+	 * @param chunkLargeRecords
+	 * @return List<PutRecordsRequestEntry>
+	 */
+	public static List<PutRecordsRequestEntry> toRequestEntries(byte[] data, String partitionKey,
+			String explicitHashKey, boolean chunkLargeRecords) {
+		List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>();
+		int partitionKeyBytes = partitionKey.getBytes(StandardCharsets.UTF_8).length;
+		if (!chunkLargeRecords || data.length + partitionKeyBytes <= MAX_RECORD_BYTES) {
+			entries.add(newEntry(ByteBuffer.wrap(data), partitionKey, explicitHashKey));
+			return entries;
+		}
+		int chunkPayloadBytes = MAX_RECORD_BYTES - HEADER_BYTES - partitionKeyBytes;
+		int chunkCount = (data.length + chunkPayloadBytes - 1) / chunkPayloadBytes;
+		UUID messageId = UUID.randomUUID();
+		for (int index = 0; index < chunkCount; index++) {
+			int offset = index * chunkPayloadBytes;
+			int length = Math.min(chunkPayloadBytes, data.length - offset);
+			ByteBuffer chunk = ByteBuffer.allocate(HEADER_BYTES + length);
+			chunk.putInt(CHUNK_MARKER);
+			chunk.putLong(messageId.getMostSignificantBits());
+			chunk.putLong(messageId.getLeastSignificantBits());
+			chunk.putInt(index);
+			chunk.putInt(chunkCount);
+			chunk.put(data, offset, length);
+			chunk.flip();
+			entries.add(newEntry(chunk, partitionKey, explicitHashKey));
+		}
+		return entries;
+	}
+
+	/**
+	 * Groups request entries into PutRecords requests of at most 500 records and
+	 * 5 MiB, keeping their order.
+	 *
+	 * @param entries
+	 * @return List<List<PutRecordsRequestEntry>>
+	 */
+	public static List<List<PutRecordsRequestEntry>> partitionRequests(List<PutRecordsRequestEntry> entries) {
+		List<List<PutRecordsRequestEntry>> requests = new ArrayList<List<PutRecordsRequestEntry>>();
+		List<PutRecordsRequestEntry> current = new ArrayList<PutRecordsRequestEntry>();
+		long currentBytes = 0;
+		for (PutRecordsRequestEntry entry : entries) {
+			long entryBytes = entry.getData().remaining()
+					+ entry.getPartitionKey().getBytes(StandardCharsets.UTF_8).length;
+			if (!current.isEmpty() && (current.size() == MAX_RECORDS_PER_REQUEST
+					|| currentBytes + entryBytes > MAX_REQUEST_BYTES)) {
+				requests.add(current);
+				current = new ArrayList<PutRecordsRequestEntry>();
+				currentBytes = 0;
+			}
+			current.add(entry);
+			currentBytes += entryBytes;
+		}
+		if (!current.isEmpty()) {
+			requests.add(current);
+		}
+		return requests;
+	}
+
+	/**
+	 * Checks whether a record is a chunk of a larger message. The position of the
+	 * buffer is not changed.
+	 *
+	 * @param data
+	 * @return true if the record starts with a chunk header
+	 */
+	public static boolean isChunk(ByteBuffer data) {
+		return data.remaining() >= HEADER_BYTES && data.getInt(data.position()) == CHUNK_MARKER;
+	}
+
+	private static PutRecordsRequestEntry newEntry(ByteBuffer data, String partitionKey, String explicitHashKey) {
+		PutRecordsRequestEntry putRecsReqEntry = new PutRecordsRequestEntry();
+		putRecsReqEntry.setData(data);
+		putRecsReqEntry.setPartitionKey(partitionKey);
+		putRecsReqEntry.setExplicitHashKey(explicitHashKey);
+		return putRecsReqEntry;
+	}
+
+}
@@ -0,0 +1,135 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>
+ * Consumer side helper to rebuild messages that were split into chunks by
+ * {@link MessageChunker}. Records are passed in as they are read from a shard;
+ * chunks may arrive in any order.
+ * <p>
+ * An instance is meant to be used by a single shard consumer. The number of
+ * incomplete messages kept in memory is bounded; when the bound is reached the
+ * oldest incomplete message is dropped. A record that starts with the chunk
+ * marker but has an implausible header (chunk count out of bounds for the
+ * maximum message size, or index out of range) is returned as a plain record.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class MessageReassembler {
+
+	public static final int DEFAULT_MAX_MESSAGE_BYTES = 64 * 1024 * 1024;
+
+	private final int maxIncompleteMessages;
+	private final int maxChunksPerMessage;
+	private final Map<UUID, PartialMessage> incomplete = new LinkedHashMap<UUID, PartialMessage>();
+
+	private static class PartialMessage {
+		private final byte[][] chunks;
+		private int received = 0;
+		private int totalBytes = 0;
+
+		PartialMessage(int chunkCount) {
+			this.chunks = new byte[chunkCount][];
+		}
+	}
+
+	/**
+	 * Creates a reassembler for messages of up to 64 MiB.
+	 *
+	 * @param maxIncompleteMessages number of incomplete messages kept in memory
+	 */
+	public MessageReassembler(int maxIncompleteMessages) {
+		this(maxIncompleteMessages, DEFAULT_MAX_MESSAGE_BYTES);
+	}
+
+	/**
+	 * @param maxIncompleteMessages number of incomplete messages kept in memory
+	 * @param maxMessageBytes       size of the largest message the producer
+	 *                              writes
+	 */
+	public MessageReassembler(int maxIncompleteMessages, int maxMessageBytes) {
+		this.maxIncompleteMessages = maxIncompleteMessages;
+		// a chunk carries at least half a record of payload, whatever the partition key
+		int minChunkPayloadBytes = MessageChunker.MAX_RECORD_BYTES / 2;
+		this.maxChunksPerMessage = (maxMessageBytes + minChunkPayloadBytes - 1) / minChunkPayloadBytes;
+	}
+
+	/**
+	 * Adds a record read from Kinesis.
+	 *
+	 * @param data the data of the record
+	 * @return the complete message when the record is not a chunk or completes a
+	 *         message, otherwise null
+	 */
+	public byte[] add(ByteBuffer data) {
+		ByteBuffer record = data.duplicate();
+		if (!MessageChunker.isChunk(record)) {
+			return toBytes(record);
+		}
+		ByteBuffer header = record.duplicate();
+		header.getInt();
+		UUID messageId = new UUID(header.getLong(), header.getLong());
+		int index = header.getInt();
+		int chunkCount = header.getInt();
+		// a chunked message has at least two chunks
+		if (chunkCount < 2 || chunkCount > maxChunksPerMessage || index < 0 || index >= chunkCount
+				|| header.remaining() > MessageChunker.MAX_RECORD_BYTES) {
+			return toBytes(record);
+		}
+		PartialMessage partial = incomplete.get(messageId);
+		if (partial == null) {
+			if (incomplete.size() >= maxIncompleteMessages) {
+				Iterator<UUID> oldest = incomplete.keySet().iterator();
+				System.out.println("Dropping incomplete chunked message: " + oldest.next());
+				oldest.remove();
+			}
+			partial = new PartialMessage(chunkCount);
+			incomplete.put(messageId, partial);
+		} else if (partial.chunks.length != chunkCount) {
+			System.out.printf("Rejecting chunk of message %s: chunk count %d does not match %d\n", messageId,
+					chunkCount, partial.chunks.length);
+			return null;
+		}
+		if (partial.chunks[index] != null) {
+			// duplicate chunk, e.g. from a retried PutRecords request
+			return null;
+		}
+		byte[] chunk = toBytes(header);
+		partial.chunks[index] = chunk;
+		partial.received++;
+		partial.totalBytes += chunk.length;
+		if (partial.received < partial.chunks.length) {
+			return null;
+		}
+		incomplete.remove(messageId);
+		ByteBuffer message = ByteBuffer.allocate(partial.totalBytes);
+		for (byte[] part : partial.chunks) {
+			message.put(part);
+		}
+		return message.array();
+	}
+
+	/**
+	 * @return number of messages for which not all chunks have been received
+	 */
+	public int getIncompleteMessageCount() {
+		return incomplete.size();
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,364 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * <p>
+ * Producer that preserves the order of records per ordering key while still
+ * batching and writing many keys in parallel. An ordering key is either an
+ * explicit Hash Key (one per shard, i.e. ordering per shard) or a partition
+ * key.
+ * <p>
+ * Each ordering key has its own lane, a FIFO queue of records. A PutRecords
+ * request is built from the head record of many lanes, so every key has at
+ * most one record in flight while a request still carries up to 500 records.
+ * A record is removed from its lane only once Kinesis accepted it. A rejected
+ * record stays at the head of its lane and is retried, with exponential
+ * backoff and jitter, before any newer record of the same key is sent. Several
+ * requests are in flight at the same time, each for a different set of lanes.
+ * <p>
+ * SequenceNumberForOrdering is not needed: it only exists for PutRecord, and
+ * with one record in flight per key Kinesis receives the records of a key in
+ * order.
+ * <p>
+ * If a record is still rejected after the retries, its lane is failed: the
+ * remaining records of the lane are not written, new records for its key are
+ * refused, and flush() and close() throw an exception naming the failed keys.
+ * A request that fails as a whole (e.g. a network error) may have been written
+ * anyway, so records can be duplicated but are not reordered.
+ * <p>
+ * With chunkLargeRecords, a record larger than 1 MiB is split by
+ * {@link MessageChunker} into chunks that are queued as consecutive records of
+ * its lane, so they are written in order. Without it, such a record is refused
+ * when it is added.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class OrderedKinesisProducer {
+
+	private static final String PARTITION_KEY_FOR_EXPLICIT_HASH_KEY = "reqiredButHasNoEffect-when-setExplicitHashKey-isUsed";
+	private static final int DEFAULT_MAX_RETRIES = 10;
+	private static final long DEFAULT_BASE_BACKOFF_MILLIS = 50;
+	private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+
+	private final AmazonKinesis kinesis;
+	private final String streamName;
+	private final int maxRequestsInFlight;
+	private final int maxRetries;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+	private final boolean chunkLargeRecords;
+	private final ExecutorService executor;
+	private final Thread dispatcher;
+
+	private final Object lock = new Object();
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+	// lanes with a record to send and none in flight, in the order they became ready
+	private final LinkedHashSet<Lane> readyLanes = new LinkedHashSet<Lane>();
+	private final Map<String, Exception> failedLanes = new LinkedHashMap<String, Exception>();
+	private int pendingRecords = 0;
+	private int requestsInFlight = 0;
+	private boolean closed = false;
+
+	/**
+	 * A FIFO queue of records for one ordering key.
+	 */
+	private static class Lane {
+		private final String orderingKey;
+		private final ArrayDeque<PutRecordsRequestEntry> pending = new ArrayDeque<PutRecordsRequestEntry>();
+		private int attempts = 0;
+		private long retryAtMillis = 0;
+
+		Lane(String orderingKey) {
+			this.orderingKey = orderingKey;
+		}
+	}
+
+	/**
+	 * @param kinesis
+	 * @param streamName
+	 * @param maxRequestsInFlight number of PutRecords requests sent concurrently
+	 */
+	public OrderedKinesisProducer(AmazonKinesis kinesis, String streamName, int maxRequestsInFlight) {
+		this(kinesis, streamName, maxRequestsInFlight, false);
+	}
+
+	/**
+	 * @param kinesis
+	 * @param streamName
+	 * @param maxRequestsInFlight number of PutRecords requests sent concurrently
+	 * @param chunkLargeRecords   split records larger than 1 MiB into chunks
+	 */
+	public OrderedKinesisProducer(AmazonKinesis kinesis, String streamName, int maxRequestsInFlight,
+			boolean chunkLargeRecords) {
+		this(kinesis, streamName, maxRequestsInFlight, chunkLargeRecords, DEFAULT_MAX_RETRIES,
+				DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	// Test purpose only.
+	OrderedKinesisProducer(AmazonKinesis kinesis, String streamName, int maxRequestsInFlight,
+			boolean chunkLargeRecords, int maxRetries, long baseBackoffMillis, long maxBackoffMillis) {
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+		this.maxRequestsInFlight = maxRequestsInFlight;
+		this.maxRetries = maxRetries;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.chunkLargeRecords = chunkLargeRecords;
+		this.executor = Executors.newFixedThreadPool(maxRequestsInFlight);
+		this.dispatcher = new Thread(this::runDispatcher, "kinesis-ordered-dispatcher-" + streamName);
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Adds a record routed by an explicit Hash Key. Records with the same Hash
+	 * Key, i.e. the same shard, are written in order.
+	 *
+	 * @param explicitHashKey
+	 * @param record
+	 */
+	public void addRecordForShard(String explicitHashKey, String record) {
+		enqueue(explicitHashKey, MessageChunker.toRequestEntries(record.getBytes(),
+				PARTITION_KEY_FOR_EXPLICIT_HASH_KEY, explicitHashKey, chunkLargeRecords));
+	}
+
+	/**
+	 * Adds a record routed by a partition key. Records with the same partition
+	 * key are written in order. Hot key salting with HotKeyRouter is not used
+	 * here, since spreading a key across shards would break its order.
+	 *
+	 * @param partitionKey
+	 * @param record
+	 */
+	public void addRecordForKey(String partitionKey, String record) {
+		enqueue(partitionKey, MessageChunker.toRequestEntries(record.getBytes(), partitionKey, null,
+				chunkLargeRecords));
+	}
+
+	/**
+	 * Blocks until all records added so far are written or their lane failed.
+	 *
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if one or more lanes failed
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (lock) {
+			while (pendingRecords > 0) {
+				lock.wait();
+			}
+			if (!failedLanes.isEmpty()) {
+				Exception firstCause = failedLanes.values().iterator().next();
+				throw new IllegalStateException("Writing to Kinesis failed for ordering keys: " + failedLanes.keySet(),
+						firstCause);
+			}
+		}
+	}
+
+	/**
+	 * Writes the remaining records and stops the producer. Records added after
+	 * close() are refused.
+	 *
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if one or more lanes failed
+	 */
+	public void close() throws InterruptedException {
+		synchronized (lock) {
+			closed = true;
+		}
+		try {
+			flush();
+		} finally {
+			// the dispatcher stops by itself once all records are done, unless flush was interrupted
+			dispatcher.interrupt();
+			dispatcher.join();
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private void enqueue(String orderingKey, List<PutRecordsRequestEntry> entries) {
+		for (PutRecordsRequestEntry entry : entries) {
+			// a record over the limit fails the whole request it is part of
+			if (entry.getData().remaining() + entry.getPartitionKey().getBytes(StandardCharsets.UTF_8).length
+					> MessageChunker.MAX_RECORD_BYTES) {
+				throw new IllegalArgumentException(
+						"Record for ordering key " + orderingKey + " is larger than 1 MiB, enable chunkLargeRecords");
+			}
+		}
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Producer is closed");
+			}
+			if (failedLanes.containsKey(orderingKey)) {
+				throw new IllegalStateException("Writing to Kinesis failed earlier for ordering key: " + orderingKey,
+						failedLanes.get(orderingKey));
+			}
+			Lane lane = lanes.get(orderingKey);
+			if (lane == null) {
+				lane = new Lane(orderingKey);
+				lanes.put(orderingKey, lane);
+				readyLanes.add(lane);
+			}
+			lane.pending.addAll(entries);
+			pendingRecords += entries.size();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Builds requests from the head records of ready lanes and hands them to the
+	 * worker pool, as long as fewer than maxRequestsInFlight requests are in
+	 * flight.
+	 */
+	private void runDispatcher() {
+		while (true) {
+			List<Lane> requestLanes;
+			List<PutRecordsRequestEntry> requestEntries;
+			synchronized (lock) {
+				try {
+					while (true) {
+						if (closed && pendingRecords == 0) {
+							return;
+						}
+						// 0 waits until notified
+						long waitMillis = 0;
+						if (requestsInFlight < maxRequestsInFlight && !readyLanes.isEmpty()) {
+							waitMillis = millisUntilNextLaneIsDue();
+							if (waitMillis == 0) {
+								break;
+							}
+						}
+						lock.wait(waitMillis);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				requestLanes = new ArrayList<Lane>();
+				List<PutRecordsRequestEntry> candidates = new ArrayList<PutRecordsRequestEntry>();
+				long now = System.currentTimeMillis();
+				for (Lane lane : readyLanes) {
+					if (lane.retryAtMillis <= now) {
+						requestLanes.add(lane);
+						candidates.add(lane.pending.peek());
+					}
+				}
+				// the first request within the limits of 500 records and 5 MiB, partition keys included
+				requestEntries = MessageChunker.partitionRequests(candidates).get(0);
+				requestLanes = requestLanes.subList(0, requestEntries.size());
+				for (Lane lane : requestLanes) {
+					readyLanes.remove(lane);
+				}
+				requestsInFlight++;
+			}
+			final List<Lane> lanesInFlight = new ArrayList<Lane>(requestLanes);
+			final List<PutRecordsRequestEntry> entriesInFlight = requestEntries;
+			executor.submit(() -> sendRequest(lanesInFlight, entriesInFlight));
+		}
+	}
+
+	/**
+	 * Returns 0 when a ready lane can be sent now, otherwise the time until the
+	 * first backoff ends. Must be called while holding the lock, with at least
+	 * one ready lane.
+	 */
+	private long millisUntilNextLaneIsDue() {
+		long now = System.currentTimeMillis();
+		long earliest = Long.MAX_VALUE;
+		for (Lane lane : readyLanes) {
+			if (lane.retryAtMillis <= now) {
+				return 0;
+			}
+			earliest = Math.min(earliest, lane.retryAtMillis - now);
+		}
+		return earliest;
+	}
+
+	/**
+	 * Sends one request and applies the outcome to its lanes: accepted records
+	 * leave their lane, rejected records stay at the head of their lane and are
+	 * retried after a backoff.
+	 */
+	private void sendRequest(List<Lane> requestLanes, List<PutRecordsRequestEntry> requestEntries) {
+		List<PutRecordsResultEntry> results = null;
+		Exception requestError = null;
+		try {
+			PutRecordsRequest putRecsReq = new PutRecordsRequest();
+			putRecsReq.setStreamName(streamName);
+			putRecsReq.setRecords(requestEntries);
+			PutRecordsResult putRecsRes = kinesis.putRecords(putRecsReq);
+			results = putRecsRes.getRecords();
+		} catch (Exception e) {
+			System.out.println("Exception in Kinesis ordered insert: " + e.getMessage());
+			requestError = e;
+		}
+		synchronized (lock) {
+			for (int i = 0; i < requestLanes.size(); i++) {
+				Lane lane = requestLanes.get(i);
+				if (results != null && results.get(i).getErrorCode() == null) {
+					lane.pending.poll();
+					lane.attempts = 0;
+					lane.retryAtMillis = 0;
+					pendingRecords--;
+				} else {
+					Exception cause = requestError != null ? requestError
+							: new IllegalStateException(results.get(i).getErrorCode() + ": "
+									+ results.get(i).getErrorMessage());
+					if (++lane.attempts > maxRetries) {
+						failLane(lane, cause);
+						continue;
+					}
+					// Ref: https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
+					long backoffCapMillis = Math.min(maxBackoffMillis, baseBackoffMillis << lane.attempts);
+					lane.retryAtMillis = System.currentTimeMillis()
+							+ ThreadLocalRandom.current().nextLong(backoffCapMillis + 1);
+				}
+				if (lane.pending.isEmpty()) {
+					lanes.remove(lane.orderingKey);
+				} else {
+					readyLanes.add(lane);
+				}
+			}
+			requestsInFlight--;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Drops the remaining records of a lane and refuses new records for its key.
+	 * Must be called while holding the lock.
+	 */
+	private void failLane(Lane lane, Exception cause) {
+		int unwritten = lane.pending.size();
+		System.out.printf("Giving up on ordering key %s, %d records not written: %s\n", lane.orderingKey,
+				unwritten, cause.getMessage());
+		lane.pending.clear();
+		lanes.remove(lane.orderingKey);
+		failedLanes.put(lane.orderingKey, cause);
+		pendingRecords -= unwritten;
+	}
+
+}
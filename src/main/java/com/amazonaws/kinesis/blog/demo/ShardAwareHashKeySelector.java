@@ -0,0 +1,149 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * <p>
+ * Round-robin selector of Hash Keys that learns from PutRecords results. It
+ * can be used wherever a circular iterator of Hash Keys is used.
+ * <p>
+ * Each Hash Key belongs to a shard. When a record sent with a Hash Key is
+ * throttled, the penalty of that Hash Key is increased. A Hash Key is skipped
+ * by the round robin while its penalty is above a threshold. The penalty decays
+ * by half every half-life, so a throttled shard is skipped for about one
+ * half-life and shards that keep throttling are skipped longer. If all shards
+ * are penalized, the least penalized one is used.
+ * <p>
+ * Rejected records are not attributed by the ShardId of the result entry,
+ * because Kinesis only returns a ShardId for records that were accepted. The
+ * explicit Hash Key of the request entry is used instead.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class ShardAwareHashKeySelector implements Iterator<String> {
+
+	private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+	private static final double SKIP_THRESHOLD = 0.5;
+	private static final long DEFAULT_HALF_LIFE_MILLIS = 1000;
+
+	private final List<String> hashKeys;
+	private final Map<String, Integer> indexByHashKey = new HashMap<String, Integer>();
+	private final double[] penalties;
+	private final long[] penaltyUpdatedMillis;
+	private final long halfLifeMillis;
+	private final boolean steerRetries;
+	private int position = 0;
+
+	/**
+	 * Creates a selector that moves retried records to healthy shards and uses
+	 * a penalty half-life of one second.
+	 *
+	 * @param hashKeys starting Hash Keys of the open shards
+	 */
+	public ShardAwareHashKeySelector(List<String> hashKeys) {
+		this(hashKeys, DEFAULT_HALF_LIFE_MILLIS, true);
+	}
+
+	/**
+	 * @param hashKeys       starting Hash Keys of the open shards
+	 * @param halfLifeMillis time for a penalty to decay by half
+	 * @param steerRetries   move retried records to another shard. Disable
+	 *                       this when records must stay on their shard to keep
+	 *                       ordering.
+	 */
+	public ShardAwareHashKeySelector(List<String> hashKeys, long halfLifeMillis, boolean steerRetries) {
+		if (hashKeys.isEmpty()) {
+			throw new IllegalArgumentException("At least one Hash Key is required");
+		}
+		this.hashKeys = new ArrayList<String>(hashKeys);
+		for (int i = 0; i < this.hashKeys.size(); i++) {
+			indexByHashKey.put(this.hashKeys.get(i), i);
+		}
+		this.penalties = new double[this.hashKeys.size()];
+		this.penaltyUpdatedMillis = new long[this.hashKeys.size()];
+		this.halfLifeMillis = halfLifeMillis;
+		this.steerRetries = steerRetries;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return true;
+	}
+
+	/**
+	 * Returns the next Hash Key in round-robin order, skipping Hash Keys of
+	 * shards that are currently throttling.
+	 */
+	@Override
+	public synchronized String next() {
+		long now = System.currentTimeMillis();
+		int leastPenalized = position;
+		double leastPenalty = Double.MAX_VALUE;
+		for (int i = 0; i < hashKeys.size(); i++) {
+			int index = (position + i) % hashKeys.size();
+			double penalty = currentPenalty(index, now);
+			if (penalty <= SKIP_THRESHOLD) {
+				position = (index + 1) % hashKeys.size();
+				return hashKeys.get(index);
+			}
+			if (penalty < leastPenalty) {
+				leastPenalty = penalty;
+				leastPenalized = index;
+			}
+		}
+		position = (leastPenalized + 1) % hashKeys.size();
+		return hashKeys.get(leastPenalized);
+	}
+
+	/**
+	 * Records the outcome of a record written with PutRecords.
+	 *
+	 * @param requestEntry
+	 * @param resultEntry
+	 */
+	public synchronized void recordOutcome(PutRecordsRequestEntry requestEntry, PutRecordsResultEntry resultEntry) {
+		if (!THROTTLED_ERROR_CODE.equals(resultEntry.getErrorCode())) {
+			return;
+		}
+		Integer index = indexByHashKey.get(requestEntry.getExplicitHashKey());
+		if (index != null) {
+			long now = System.currentTimeMillis();
+			penalties[index] = currentPenalty(index, now) + 1;
+			penaltyUpdatedMillis[index] = now;
+		}
+	}
+
+	/**
+	 * Assigns a new Hash Key to a rejected record so that it is retried on a
+	 * healthy shard. Does nothing when retry steering is disabled or the record
+	 * is routed by partition key.
+	 *
+	 * @param requestEntry
+	 */
+	public void steerRetry(PutRecordsRequestEntry requestEntry) {
+		if (steerRetries && requestEntry.getExplicitHashKey() != null) {
+			requestEntry.setExplicitHashKey(next());
+		}
+	}
+
+	private double currentPenalty(int index, long now) {
+		if (penalties[index] == 0) {
+			return 0;
+		}
+		long elapsedMillis = now - penaltyUpdatedMillis[index];
+		return penalties[index] * Math.pow(0.5, (double) elapsedMillis / halfLifeMillis);
+	}
+
+}
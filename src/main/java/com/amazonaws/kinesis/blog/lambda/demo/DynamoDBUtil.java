@@ -7,6 +7,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
@@ -14,6 +18,7 @@ import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
@@ -32,6 +37,10 @@ import com.google.common.collect.Lists;
  */
 public class DynamoDBUtil {
 
+	private static final int MAX_BATCH_WRITE_RETRIES = 10;
+	private static final long BASE_BACKOFF_MILLIS = 50;
+	private static final long MAX_BACKOFF_MILLIS = 5000;
+
 	/**
 	 * Method to write Shard details to a DynamoDB table.
 	 * 
@@ -43,32 +52,174 @@ public class DynamoDBUtil {
 		AmazonDynamoDB dynamoDB = AmazonDynamoDBClientBuilder.standard().build();
 		List<WriteRequest> itemList = new ArrayList<WriteRequest>();
 		for (KinesisShard shard : openShards) {
-			Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
-			item.put("shard_id",
-					new AttributeValue().withS(shard.getShardId()));
-			item.put("stream_name", new AttributeValue().withS(shard.getStreamName()));
-			item.put("starting_hash_key", new AttributeValue().withS(shard.getStartingHashKey()));
-			item.put("ending_hash_key", new AttributeValue().withS(shard.getEndingHashKey()));
-			itemList.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+			itemList.add(new WriteRequest().withPutRequest(new PutRequest().withItem(toItem(shard))));
 		}
+		int failedBatches = 0;
 		for (List<WriteRequest> miniBatch : Lists.partition(itemList, 25)) {
-			Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
-			requestItems.put(dynamoDBTblName, miniBatch);
-			BatchWriteItemRequest batchWriteItemRequest = new BatchWriteItemRequest()
-					.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL).withRequestItems(requestItems);
 			try {
-				BatchWriteItemResult result = dynamoDB.batchWriteItem(batchWriteItemRequest);
-				while (result.getUnprocessedItems().size() > 0) {
-					Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
-					result = dynamoDB.batchWriteItem(unprocessedItems);
-				}
+				batchWriteWithBackoff(dynamoDB, dynamoDBTblName, miniBatch);
 			} catch (AmazonDynamoDBException e) {
 				e.printStackTrace();
 				System.out.println("Could not insert into DynamoDB");
+				failedBatches++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("Interrupted while inserting into DynamoDB");
+				failedBatches++;
+				break;
 			}
 		}
-		System.out.println("Shard details are inserted to DynamoDB table: " + dynamoDBTblName);
+		if (failedBatches == 0) {
+			System.out.println("Shard details are inserted to DynamoDB table: " + dynamoDBTblName);
+		} else {
+			System.out.printf("Shard details are incomplete in DynamoDB table %s: %d batches failed. \n",
+					dynamoDBTblName, failedBatches);
+		}
+		dynamoDB.shutdown();
+	}
+
+	/**
+	 * Method to bring the Shard details of streams in a DynamoDB table in line
+	 * with their open shards. Only the differences are written: new or changed
+	 * shards are put and shards that are no longer open (e.g. closed by a
+	 * reshard) are deleted. The 25-item batches are written in parallel using
+	 * the given executor.
+	 * 
+	 * @param openShardsByStream open shards of each stream, keyed by stream name
+	 * @param dynamoDBTblName
+	 * @param executor
+	 * @return number of batches that could not be written, 0 when the table is
+	 *         in sync
+	 */
+	public int syncHashkeysToDynamoDB(Map<String, List<KinesisShard>> openShardsByStream, String dynamoDBTblName,
+			ExecutorService executor) {
+		AmazonDynamoDB dynamoDB = AmazonDynamoDBClientBuilder.standard().build();
+		// one scan for all streams instead of one per stream
+		Map<String, Map<String, KinesisShard>> storedShardsByStream = getShardDetailsByStream(dynamoDB,
+				dynamoDBTblName);
+		List<WriteRequest> itemList = new ArrayList<WriteRequest>();
+		for (Map.Entry<String, List<KinesisShard>> entry : openShardsByStream.entrySet()) {
+			Map<String, KinesisShard> storedShards = new HashMap<String, KinesisShard>(
+					storedShardsByStream.getOrDefault(entry.getKey(), new HashMap<String, KinesisShard>()));
+			int puts = 0;
+			for (KinesisShard shard : entry.getValue()) {
+				KinesisShard storedShard = storedShards.remove(shard.getShardId());
+				if (storedShard == null || !shard.getStartingHashKey().equals(storedShard.getStartingHashKey())
+						|| !shard.getEndingHashKey().equals(storedShard.getEndingHashKey())) {
+					itemList.add(new WriteRequest().withPutRequest(new PutRequest().withItem(toItem(shard))));
+					puts++;
+				}
+			}
+			// whatever is left in the table is not an open shard anymore
+			for (String shardId : storedShards.keySet()) {
+				Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+				key.put("shard_id", new AttributeValue().withS(shardId));
+				itemList.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key)));
+			}
+			System.out.printf("Stream %s: %d shards to put, %d shards to delete. \n", entry.getKey(), puts,
+					storedShards.size());
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (List<WriteRequest> miniBatch : Lists.partition(itemList, 25)) {
+			futures.add(executor.submit(() -> {
+				batchWriteWithBackoff(dynamoDB, dynamoDBTblName, miniBatch);
+				return null;
+			}));
+		}
+		int failedBatches = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				System.out.println("Could not sync a batch of shard details to DynamoDB");
+				failedBatches++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("Interrupted while syncing shard details to DynamoDB");
+				// the batches not waited for are cancelled and counted as failed
+				for (int j = i; j < futures.size(); j++) {
+					futures.get(j).cancel(true);
+				}
+				failedBatches += futures.size() - i;
+				break;
+			}
+		}
+		if (failedBatches == 0) {
+			System.out.println("Shard details are synced to DynamoDB table: " + dynamoDBTblName);
+		} else {
+			System.out.printf("Shard details are out of sync in DynamoDB table %s: %d of %d batches failed. \n",
+					dynamoDBTblName, failedBatches, futures.size());
+		}
 		dynamoDB.shutdown();
+		return failedBatches;
+	}
+
+	/**
+	 * Method to write a batch of items to a DynamoDB table. Unprocessed items are
+	 * re-sent with exponential backoff and full jitter.
+	 * 
+	 * @param dynamoDB
+	 * @param tableName
+	 * @param miniBatch up to 25 write requests
+	 * @throws InterruptedException
+	 */
+	private void batchWriteWithBackoff(AmazonDynamoDB dynamoDB, String tableName, List<WriteRequest> miniBatch)
+			throws InterruptedException {
+		Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+		requestItems.put(tableName, miniBatch);
+		BatchWriteItemRequest batchWriteItemRequest = new BatchWriteItemRequest()
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL).withRequestItems(requestItems);
+		BatchWriteItemResult result = dynamoDB.batchWriteItem(batchWriteItemRequest);
+		int attempt = 0;
+		while (result.getUnprocessedItems().size() > 0) {
+			if (++attempt > MAX_BATCH_WRITE_RETRIES) {
+				throw new AmazonDynamoDBException("Unprocessed items left after " + MAX_BATCH_WRITE_RETRIES
+						+ " retries for table: " + tableName);
+			}
+			// Ref: https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
+			long backoffCapMillis = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+			Thread.sleep(ThreadLocalRandom.current().nextLong(backoffCapMillis + 1));
+			result = dynamoDB.batchWriteItem(result.getUnprocessedItems());
+		}
+	}
+
+	/**
+	 * Method to read Shard details of all streams from a DynamoDB table.
+	 * 
+	 * @param dynamoDB
+	 * @param tableName
+	 * @return Shard details keyed by stream name and shard id
+	 */
+	private Map<String, Map<String, KinesisShard>> getShardDetailsByStream(AmazonDynamoDB dynamoDB,
+			String tableName) {
+		Map<String, Map<String, KinesisShard>> shardsByStream = new HashMap<String, Map<String, KinesisShard>>();
+		Map<String, AttributeValue> lastKeyEvaluated = null;
+		do {
+			ScanRequest scanRequest = new ScanRequest().withTableName(tableName)
+					.withExclusiveStartKey(lastKeyEvaluated);
+			ScanResult result = dynamoDB.scan(scanRequest);
+			for (Map<String, AttributeValue> item : result.getItems()) {
+				KinesisShard shard = new KinesisShard();
+				shard.setShardId(item.get("shard_id").getS());
+				shard.setStreamName(item.get("stream_name").getS());
+				shard.setStartingHashKey(item.get("starting_hash_key").getS());
+				shard.setEndingHashKey(item.get("ending_hash_key").getS());
+				shardsByStream.computeIfAbsent(shard.getStreamName(), k -> new HashMap<String, KinesisShard>())
+						.put(shard.getShardId(), shard);
+			}
+			lastKeyEvaluated = result.getLastEvaluatedKey();
+		} while (lastKeyEvaluated != null);
+		return shardsByStream;
+	}
+
+	private Map<String, AttributeValue> toItem(KinesisShard shard) {
+		Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+		item.put("shard_id", new AttributeValue().withS(shard.getShardId()));
+		item.put("stream_name", new AttributeValue().withS(shard.getStreamName()));
+		item.put("starting_hash_key", new AttributeValue().withS(shard.getStartingHashKey()));
+		item.put("ending_hash_key", new AttributeValue().withS(shard.getEndingHashKey()));
+		return item;
 	}
 
 	/**
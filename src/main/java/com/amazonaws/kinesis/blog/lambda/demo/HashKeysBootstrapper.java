@@ -3,7 +3,17 @@
 
 package com.amazonaws.kinesis.blog.lambda.demo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.kinesis.blog.demo.KinesisStreamUtil;
 import com.amazonaws.services.kinesis.AmazonKinesis;
@@ -14,29 +24,99 @@ import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
  * This class has a method to fetch Kinesis Shard details from a stream and
  * populate those details to a DynamoDB table.
  * <p>
- * 
+ * It can keep the table in sync for several streams at once, optionally on a
+ * schedule. Only the differences with the table are written, and shards that
+ * are no longer open are removed from it.
+ * <p>
+ *
  * @author Ravi Itha, Amazon Web Service, Inc.
  *
  */
 public class HashKeysBootstrapper {
 
 	/**
-	 * Method to fetch Shard details of a Kinesis Stream and populate a DynamoDB
+	 * Method to fetch Shard details of Kinesis Streams and populate a DynamoDB
 	 * table.
-	 * 
+	 *
 	 * @param args
 	 */
 	public static void main(String[] args) {
 
 		String region = "us-east-1";
-		String streamName = "stream_with_125_shards";
+		List<String> streamNames = Arrays.asList("stream_with_125_shards");
 		String dynamoDBTblName = "kinesis_hash_keys";
+		// Set to a positive value to keep the table in sync on a schedule.
+		long syncIntervalMinutes = 0;
+		int parallelism = 8;
+
+		AmazonKinesis kinesis = AmazonKinesisClientBuilder.standard().withRegion(region).build();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		if (syncIntervalMinutes <= 0) {
+			try {
+				syncShardMaps(kinesis, streamNames, dynamoDBTblName, executor);
+			} finally {
+				executor.shutdown();
+			}
+			return;
+		}
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(() -> {
+			// an exception escaping the task would cancel the schedule
+			try {
+				syncShardMaps(kinesis, streamNames, dynamoDBTblName, executor);
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.out.println("Shard map sync failed, retrying at the next run");
+			}
+		}, 0, syncIntervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Method to sync Shard details of several Kinesis Streams to a DynamoDB
+	 * table. Shards of the streams are listed in parallel and written with
+	 * {@link DynamoDBUtil#syncHashkeysToDynamoDB(Map, String, ExecutorService)}.
+	 * Throws IllegalStateException when a stream could not be listed, a batch
+	 * could not be written or the sync was interrupted, so that callers and
+	 * schedules see the failure.
+	 *
+	 * @param kinesis
+	 * @param streamNames
+	 * @param dynamoDBTblName
+	 * @param executor
+	 */
+	public static void syncShardMaps(AmazonKinesis kinesis, List<String> streamNames, String dynamoDBTblName,
+			ExecutorService executor) {
 		KinesisStreamUtil kdsUtil = new KinesisStreamUtil();
 		DynamoDBUtil ddbUtil = new DynamoDBUtil();
-		AmazonKinesis kinesis = AmazonKinesisClientBuilder.standard().withRegion(region).build();
-		List<KinesisShard> openShards = kdsUtil.getOpenShardDetails(kinesis, streamName);
-		System.out.printf("Kinesis Stream %s has %d shards. \n", streamName, openShards.size());
-		ddbUtil.insertHashkeysToDynamoDB(openShards, dynamoDBTblName);
+		Map<String, Future<List<KinesisShard>>> futures = new HashMap<String, Future<List<KinesisShard>>>();
+		for (String streamName : streamNames) {
+			futures.put(streamName, executor.submit(() -> kdsUtil.getOpenShardDetails(kinesis, streamName)));
+		}
+		Map<String, List<KinesisShard>> openShardsByStream = new HashMap<String, List<KinesisShard>>();
+		List<String> failedStreams = new ArrayList<String>();
+		for (Map.Entry<String, Future<List<KinesisShard>>> entry : futures.entrySet()) {
+			try {
+				List<KinesisShard> openShards = entry.getValue().get();
+				System.out.printf("Kinesis Stream %s has %d shards. \n", entry.getKey(), openShards.size());
+				openShardsByStream.put(entry.getKey(), openShards);
+			} catch (ExecutionException e) {
+				// skip the stream so that its rows are not deleted by mistake
+				e.getCause().printStackTrace();
+				failedStreams.add(entry.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Shard map sync interrupted while listing shards", e);
+			}
+		}
+		if (!failedStreams.isEmpty()) {
+			System.out.println("Could not list shards of streams: " + failedStreams);
+		}
+		int failedBatches = ddbUtil.syncHashkeysToDynamoDB(openShardsByStream, dynamoDBTblName, executor);
+		if (failedBatches > 0 || !failedStreams.isEmpty()) {
+			throw new IllegalStateException(String.format(
+					"Shard map sync incomplete: %d batches failed, streams not listed: %s", failedBatches,
+					failedStreams));
+		}
 	}
 
 }
@@ -7,19 +7,19 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 //import com.amazonaws.kinesis.blog.demo.KDSUtil;
+import com.amazonaws.kinesis.blog.demo.KinesisProducerDemo;
+import com.amazonaws.kinesis.blog.demo.ShardAwareHashKeySelector;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
-import com.amazonaws.services.kinesis.model.PutRecordsRequest;
-import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
-import com.amazonaws.services.kinesis.model.PutRecordsResult;
-import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
@@ -27,8 +27,6 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 
 /**
  * <p>
@@ -42,6 +40,12 @@ import com.google.common.collect.Lists;
 public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 
 	private AmazonS3 s3 = AmazonS3ClientBuilder.standard().build();
+	// Split records larger than 1 MiB into chunks instead of failing the batch
+	private boolean chunkLargeRecords = Boolean
+			.parseBoolean(Optional.ofNullable(System.getenv("chunk_large_records")).orElse("false"));
+	// Optional transformation of each record before it is written, null when not configured
+	private ParallelRecordTransformer transformStage = Optional.ofNullable(System.getenv("record_transformer"))
+			.map(ParallelRecordTransformer::forClassName).orElse(null);
 
 	public LambdaFunctionHandler() {
 	}
@@ -74,7 +78,12 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 		// Option 2: get Hash Keys directly Kinesis Stream. Use this option when Option 1 is not used.
 		// KDSUtil kdsUtil = new KDSUtil();
 		// List<String> hashKeyListForOpenShards = kdsUtil.getHashKeysForOpenShards(kinesis, targetKinesiStream);
-		
+
+		if (hashKeyListForOpenShards.isEmpty()) {
+			context.getLogger().log(String.format("No Hash Keys found for Kinesis Stream %s in table %s. Run"
+					+ " HashKeysBootstrapper to populate the table.", targetKinesiStream, ddbTblName4HashKeys));
+			return contentType;
+		}
 		Iterator<String> hashKeyIterator = createRoundrobinListofHashKyes(hashKeyListForOpenShards);
 
 		// Get the object from the event and show its content type
@@ -84,57 +93,100 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 			fullObject = s3.getObject(new GetObjectRequest(bucket, key));
 			contentType = fullObject.getObjectMetadata().getContentType();
 			context.getLogger().log("CONTENT TYPE: " + contentType);
-			processRecordsFromObject(fullObject.getObjectContent(), kinesis, targetKinesiStream, hashKeyIterator);
 		} catch (Exception e) {
 			e.printStackTrace();
 			context.getLogger().log(String.format("Error getting object %s from bucket %s. Make sure they exist and"
 					+ " your bucket is in the same region as this function.", key, bucket));
+			return contentType;
+		}
+		try {
+			processRecordsFromObject(fullObject.getObjectContent(), kinesis, targetKinesiStream, hashKeyIterator);
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			context.getLogger().log(String.format("Error transforming records of object %s from bucket %s. Records"
+					+ " after the failed batch were not written to Kinesis Stream %s.", key, bucket,
+					targetKinesiStream));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			context.getLogger().log(String.format("Interrupted while processing object %s from bucket %s.", key,
+					bucket));
+		} catch (Exception e) {
+			e.printStackTrace();
+			context.getLogger().log(String.format("Error processing object %s from bucket %s for Kinesis Stream %s.",
+					key, bucket, targetKinesiStream));
 		}
 		return contentType;
 	}
 
 	private void processRecordsFromObject(InputStream input, AmazonKinesis kinesis, String targetKinesiStream,
-			Iterator<String> hashKeyIterator) throws IOException {
+			Iterator<String> hashKeyIterator) throws IOException, InterruptedException, ExecutionException {
 		// Read the text input stream one line at a time and display each line.
 		List<String> recordList = new ArrayList<String>();
+		// the previous batch, written while the current one is transformed
+		Future<List<String>> transformedBatch = null;
 		BufferedReader reader = new BufferedReader(new InputStreamReader(input));
 		String line = null;
 		while ((line = reader.readLine()) != null) {
 			// System.out.println(line);
 			recordList.add(line);
 			if (recordList.size() == 500) {
-				writeMessagesToKinesis(recordList, targetKinesiStream, kinesis, hashKeyIterator);
-				recordList.clear();
+				Future<List<String>> nextBatch = transformRecords(recordList);
+				writeTransformedBatch(transformedBatch, targetKinesiStream, kinesis, hashKeyIterator);
+				transformedBatch = nextBatch;
+				// the list is still read by the transformation
+				recordList = new ArrayList<String>();
 			}
 		}
 		if (recordList.size() > 0) {
-			writeMessagesToKinesis(recordList, targetKinesiStream, kinesis, hashKeyIterator);
-			recordList.clear();
+			Future<List<String>> nextBatch = transformRecords(recordList);
+			writeTransformedBatch(transformedBatch, targetKinesiStream, kinesis, hashKeyIterator);
+			transformedBatch = nextBatch;
 		}
+		writeTransformedBatch(transformedBatch, targetKinesiStream, kinesis, hashKeyIterator);
 
 		System.out.println();
 	}
 
 	/**
-	 * This method demonstrates writing multiple messages to Kinesis Data Stream
-	 * using PutRecords API.
+	 * This method starts applying the transformer configured through the
+	 * environment variable record_transformer to a list of records, in parallel.
+	 * Records are returned unchanged when no transformer is configured.
 	 * 
-	 * Explicit Hash Keys: Hash Keys belong to shards are used to write records.
-	 * Partition key is needed and it can be an empty string. When both Partition
-	 * Key and explicit Hash Key are set, explicit Hash Key takes precedence.
-	 * Calling hashKeyIterator.next() provides a Hash Key belongs to a shard.
+	 * @param recordList
+	 * @return
+	 */
+	private Future<List<String>> transformRecords(List<String> recordList) {
+		if (transformStage == null) {
+			return CompletableFuture.completedFuture(recordList);
+		}
+		return transformStage.submit(recordList);
+	}
+
+	/**
+	 * This method waits for a batch to be transformed and writes it to Kinesis.
 	 * 
-	 * Retry logic: PutRecords is not atomic so it can partially reject some
-	 * records. Unlike PutRecord, PutRecords does not thrown an exception rather it
-	 * rejects records that are failed to write. Records are rejected for two
-	 * reasons: 1. ProvisionedThroughputExceededException 2. InternalFailure. The
-	 * retry logic used here handles both these errors.
+	 * @param transformedBatch null when there is no batch yet
+	 * @param streamName
+	 * @param kinesis
+	 * @param hashKeyIterator
+	 * @throws ExecutionException when the transformation of the batch failed
+	 */
+	private void writeTransformedBatch(Future<List<String>> transformedBatch, String streamName,
+			AmazonKinesis kinesis, Iterator<String> hashKeyIterator) throws InterruptedException, ExecutionException {
+		if (transformedBatch != null) {
+			writeMessagesToKinesis(transformedBatch.get(), streamName, kinesis, hashKeyIterator);
+		}
+	}
+
+	/**
+	 * This method writes multiple messages to Kinesis Data Stream using PutRecords
+	 * API. It uses the same implementation as
+	 * {@link KinesisProducerDemo#writeMessagesToKinesis(List, String, AmazonKinesis, Iterator, boolean)},
+	 * which describes the use of explicit Hash Keys and the retry logic.
 	 * 
-	 * Input records used for demo purpose: List of input messages is broken into
-	 * smaller list objects with 500 records each. Kinesis Tip 1: Each PutRecords
-	 * request can support up to 500 records. Kinesis Tip 2: Each record in the
-	 * request can be as large as 1 MiB, up to a limit of 5 MiB for the entire
-	 * request, including partition keys.
+	 * Large records: when the environment variable chunk_large_records is true,
+	 * records larger than 1 MiB are split into chunks written to the same shard.
+	 * Otherwise such a record fails the request it belongs to.
 	 *
 	 * @param msgList
 	 * @param streamName
@@ -143,57 +195,19 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 	 */
 	public void writeMessagesToKinesis(List<String> msgList, String streamName, AmazonKinesis kinesis,
 			Iterator<String> hashKeyIterator) {
-		PutRecordsRequest putRecsReq = new PutRecordsRequest();
-		List<PutRecordsRequestEntry> putRecReqEntryList = new ArrayList<PutRecordsRequestEntry>();
-		PutRecordsResult putRecsRes = new PutRecordsResult();
-		List<List<String>> listofSmallerLists = Lists.partition(msgList, 500);
-		for (List<String> smallerList : listofSmallerLists) {
-			putRecReqEntryList.clear();
-			for (String message : smallerList) {
-				PutRecordsRequestEntry putRecsReqEntry = new PutRecordsRequestEntry();
-				putRecsReqEntry.setData(ByteBuffer.wrap(message.getBytes()));
-				putRecsReqEntry.setPartitionKey("reqiredButHasNoEffect-when-setExplicitHashKey-isUsed");
-				putRecsReqEntry.setExplicitHashKey(hashKeyIterator.next());
-				putRecReqEntryList.add(putRecsReqEntry);
-			}
-			try {
-				putRecsReq.setStreamName(streamName);
-				putRecsReq.setRecords(putRecReqEntryList);
-				putRecsRes = kinesis.putRecords(putRecsReq);
-				while (putRecsRes.getFailedRecordCount() > 0) {
-					System.out.println("Processing rejected records");
-					// TODO: For simplicity, the backoff implemented as a constant 100ms sleep
-					// For production-grade, consider using CoralRetry's Exponential Jittered Backoff retry strategy
-					// Ref: https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
-					Thread.sleep(100);
-					final List<PutRecordsRequestEntry> failedRecordsList = new ArrayList<PutRecordsRequestEntry>();
-					final List<PutRecordsResultEntry> putRecsResEntryList = putRecsRes.getRecords();
-					for (int i = 0; i < putRecsResEntryList.size(); i++) {
-						final PutRecordsRequestEntry putRecordReqEntry = putRecReqEntryList.get(i);
-						final PutRecordsResultEntry putRecordsResEntry = putRecsResEntryList.get(i);
-						if (putRecordsResEntry.getErrorCode() != null) {
-							failedRecordsList.add(putRecordReqEntry);
-						}
-					}
-					putRecReqEntryList = failedRecordsList;
-					putRecsReq.setRecords(putRecReqEntryList);
-					putRecsRes = kinesis.putRecords(putRecsReq);
-				}
-				System.out.printf("%d records inserted to Kinesis Stream successfully.\n", smallerList.size());
-			} catch (Exception e) {
-				System.out.println("Exception in Kinesis Batch Insert: " + e.getMessage());
-			}
-		}
+		KinesisProducerDemo.writeMessagesToKinesis(msgList, streamName, kinesis, hashKeyIterator, chunkLargeRecords);
 	}
 
 	/**
-	 * This method creates a circular list based on a standard array list.
+	 * This method creates a circular list based on a standard array list. Shards
+	 * that are throttling are skipped and rejected records are retried on healthy
+	 * shards.
 	 * 
 	 * @param hashKeysList
 	 * @return
 	 */
 	public Iterator<String> createRoundrobinListofHashKyes(List<String> hashKeysList) {
-		Iterator<String> hashKeyIterator = Iterables.cycle(hashKeysList).iterator();
+		Iterator<String> hashKeyIterator = new ShardAwareHashKeySelector(hashKeysList);
 		return hashKeyIterator;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.lambda.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+
+/**
+ * <p>
+ * Transformation stage between reading records and writing them to Kinesis.
+ * A list of records is split into chunks and each chunk is transformed by a
+ * {@link RecordTransformer} on a work-stealing (fork-join) pool, so CPU-bound
+ * transformations use all vCPUs of the Lambda function.
+ * <p>
+ * Lists are transformed asynchronously, so the caller can write one list to
+ * Kinesis while the next one is transformed. Transformed records keep their
+ * input order. When the transformer throws an exception, the transformation
+ * of the whole list fails instead of dropping the record.
+ * <p>
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class ParallelRecordTransformer {
+
+	// Smaller chunks cost more in scheduling than they gain in parallelism.
+	private static final int MIN_CHUNK_SIZE = 50;
+
+	private final RecordTransformer transformer;
+	private final int parallelism;
+	private final ExecutorService pool;
+
+	/**
+	 * @param transformer
+	 * @param parallelism number of worker threads, usually the number of vCPUs
+	 */
+	public ParallelRecordTransformer(RecordTransformer transformer, int parallelism) {
+		this.transformer = transformer;
+		this.parallelism = parallelism;
+		this.pool = Executors.newWorkStealingPool(parallelism);
+	}
+
+	/**
+	 * Creates a stage for a transformer class given by name.
+	 *
+	 * @param className class implementing RecordTransformer with a public
+	 *                  no-argument constructor
+	 * @return ParallelRecordTransformer
+	 */
+	public static ParallelRecordTransformer forClassName(String className) {
+		try {
+			RecordTransformer transformer = Class.forName(className).asSubclass(RecordTransformer.class)
+					.getDeclaredConstructor().newInstance();
+			return new ParallelRecordTransformer(transformer, Runtime.getRuntime().availableProcessors());
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Could not create record transformer: " + className, e);
+		}
+	}
+
+	/**
+	 * Starts transforming a list of records and returns without waiting. Records
+	 * for which the transformer returns null are dropped. The list must not be
+	 * changed until the transformation completes.
+	 *
+	 * @param records
+	 * @return transformed records, in input order. Future.get() throws an
+	 *         ExecutionException when the transformer threw an exception for
+	 *         any record.
+	 */
+	public Future<List<String>> submit(List<String> records) {
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (records.size() + parallelism - 1) / parallelism);
+		List<CompletableFuture<List<String>>> chunks = new ArrayList<CompletableFuture<List<String>>>();
+		for (List<String> chunk : Lists.partition(records, chunkSize)) {
+			chunks.add(CompletableFuture.supplyAsync(() -> transformChunk(chunk), pool));
+		}
+		return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			List<String> transformed = new ArrayList<String>(records.size());
+			for (CompletableFuture<List<String>> chunk : chunks) {
+				transformed.addAll(chunk.join());
+			}
+			return transformed;
+		});
+	}
+
+	private List<String> transformChunk(List<String> chunk) {
+		List<String> transformed = new ArrayList<String>(chunk.size());
+		for (String record : chunk) {
+			String result = transformer.transform(record);
+			if (result != null) {
+				transformed.add(result);
+			}
+		}
+		return transformed;
+	}
+
+}
@@ -0,0 +1,31 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.lambda.demo;
+
+/**
+ * <p>
+ * Transformation applied to each record before it is written to Kinesis, e.g.
+ * CSV to JSON conversion, field projection, enrichment, or filtering.
+ * <p>
+ * Implementations are called from several threads at once, so they must be
+ * thread-safe. To be configured through the Lambda environment variable
+ * record_transformer, an implementation needs a public no-argument
+ * constructor.
+ * <p>
+ * 
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public interface RecordTransformer {
+
+	/**
+	 * Transforms a record. An exception fails the transformation of the batch
+	 * the record belongs to, and no further records are written.
+	 * 
+	 * @param record
+	 * @return the transformed record, or null to drop the record
+	 */
+	String transform(String record);
+
+}
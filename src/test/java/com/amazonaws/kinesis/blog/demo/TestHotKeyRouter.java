@@ -0,0 +1,82 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test class for the hot key detection and salting of HotKeyRouter.
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class TestHotKeyRouter {
+
+	@Test
+	public void hotKeyIsSpreadAcrossSubRanges() {
+		HotKeyRouter router = new HotKeyRouter(50, 0.1, 4);
+		Random random = new Random(1);
+		Set<String> hotKeyHashKeys = new HashSet<String>();
+		for (int i = 0; i < 5000; i++) {
+			String partitionKey = random.nextInt(3) == 0 ? "tenantA" : "tenant" + random.nextInt(1000);
+			String hashKey = router.explicitHashKey(partitionKey);
+			if (partitionKey.equals("tenantA")) {
+				hotKeyHashKeys.add(hashKey);
+			}
+		}
+		assertEquals(1, router.getHotKeys().size());
+		assertEquals(Integer.valueOf(4), router.getHotKeys().get("tenantA"));
+		assertEquals(4, hotKeyHashKeys.size());
+		assertTrue(hotKeyHashKeys.contains(HotKeyRouter.hashKeyFor("tenantA")));
+	}
+
+	@Test
+	public void coldKeysUseKinesisHashKey() {
+		HotKeyRouter router = new HotKeyRouter(100, 0.01, 4);
+		for (int i = 0; i < 20000; i++) {
+			String partitionKey = "key" + i;
+			assertEquals(HotKeyRouter.hashKeyFor(partitionKey), router.explicitHashKey(partitionKey));
+		}
+		assertTrue(router.getHotKeys().isEmpty());
+	}
+
+	@Test
+	public void uniformKeysAreNotHot() {
+		HotKeyRouter router = new HotKeyRouter(100, 0.05, 4);
+		Random random = new Random(2);
+		for (int i = 0; i < 50000; i++) {
+			router.explicitHashKey("key" + random.nextInt(200));
+		}
+		assertTrue(router.getHotKeys().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shareBelowSketchResolutionIsRejected() {
+		new HotKeyRouter(100, 0.001, 4);
+	}
+
+	@Test
+	public void hotKeyCoolsDownAfterDecay() {
+		HotKeyRouter router = new HotKeyRouter(50, 0.1, 4);
+		for (int i = 0; i < 5000; i++) {
+			router.explicitHashKey(i % 2 == 0 ? "tenantA" : "tenant" + i % 100);
+		}
+		assertTrue(router.getHotKeys().containsKey("tenantA"));
+		Random random = new Random(3);
+		for (int i = 0; i < 60000; i++) {
+			router.explicitHashKey("tenant" + random.nextInt(1000));
+		}
+		assertFalse(router.getHotKeys().containsKey("tenantA"));
+		assertEquals(HotKeyRouter.hashKeyFor("tenantA"), router.explicitHashKey("tenantA"));
+	}
+
+}
@@ -0,0 +1,150 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+
+/**
+ * Round-trip tests for the chunk format of MessageChunker and
+ * MessageReassembler.
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class TestMessageChunker {
+
+	private static final String PARTITION_KEY = "pk";
+	private static final String HASH_KEY = "123";
+
+	@Test
+	public void smallMessageIsWrittenUnchanged() {
+		byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+		List<PutRecordsRequestEntry> entries = MessageChunker.toRequestEntries(data, PARTITION_KEY, HASH_KEY, true);
+		assertEquals(1, entries.size());
+		assertFalse(MessageChunker.isChunk(entries.get(0).getData()));
+		assertArrayEquals(data, new MessageReassembler(10).add(entries.get(0).getData()));
+	}
+
+	@Test
+	public void outOfOrderChunksAreReassembled() {
+		byte[] data = randomBytes(3 * MessageChunker.MAX_RECORD_BYTES + 7);
+		List<PutRecordsRequestEntry> entries = MessageChunker.toRequestEntries(data, PARTITION_KEY, HASH_KEY, true);
+		assertEquals(4, entries.size());
+		for (PutRecordsRequestEntry entry : entries) {
+			assertTrue(MessageChunker.isChunk(entry.getData()));
+			assertEquals(HASH_KEY, entry.getExplicitHashKey());
+			assertTrue(entry.getData().remaining() + PARTITION_KEY.length() <= MessageChunker.MAX_RECORD_BYTES);
+		}
+		List<PutRecordsRequestEntry> shuffled = new ArrayList<PutRecordsRequestEntry>(entries);
+		Collections.reverse(shuffled);
+		MessageReassembler reassembler = new MessageReassembler(10);
+		for (int i = 0; i < shuffled.size() - 1; i++) {
+			assertNull(reassembler.add(shuffled.get(i).getData()));
+		}
+		assertArrayEquals(data, reassembler.add(shuffled.get(shuffled.size() - 1).getData()));
+		assertEquals(0, reassembler.getIncompleteMessageCount());
+	}
+
+	@Test
+	public void duplicateChunksAreIgnored() {
+		byte[] data = randomBytes(2 * MessageChunker.MAX_RECORD_BYTES);
+		List<PutRecordsRequestEntry> entries = MessageChunker.toRequestEntries(data, PARTITION_KEY, HASH_KEY, true);
+		assertEquals(3, entries.size());
+		MessageReassembler reassembler = new MessageReassembler(10);
+		assertNull(reassembler.add(entries.get(0).getData()));
+		assertNull(reassembler.add(entries.get(0).getData()));
+		assertNull(reassembler.add(entries.get(1).getData()));
+		assertNull(reassembler.add(entries.get(1).getData()));
+		assertArrayEquals(data, reassembler.add(entries.get(2).getData()));
+	}
+
+	@Test
+	public void plainRecordStartingWithMarkerIsPassedThrough() {
+		// marker followed by a header with a huge chunk count
+		ByteBuffer record = header(UUID.randomUUID(), 0, Integer.MAX_VALUE, "payload");
+		byte[] expected = toBytes(record);
+		assertArrayEquals(expected, new MessageReassembler(10).add(record));
+
+		// marker followed by a negative chunk count
+		record = header(UUID.randomUUID(), 0, -5, "payload");
+		assertArrayEquals(toBytes(record), new MessageReassembler(10).add(record));
+
+		// index outside of the chunk count
+		record = header(UUID.randomUUID(), 3, 2, "payload");
+		assertArrayEquals(toBytes(record), new MessageReassembler(10).add(record));
+	}
+
+	@Test
+	public void chunkWithDifferentCountIsRejected() {
+		UUID messageId = UUID.randomUUID();
+		MessageReassembler reassembler = new MessageReassembler(10);
+		assertNull(reassembler.add(header(messageId, 0, 2, "a")));
+		assertNull(reassembler.add(header(messageId, 1, 3, "b")));
+		assertArrayEquals("ab".getBytes(StandardCharsets.UTF_8), reassembler.add(header(messageId, 1, 2, "b")));
+	}
+
+	@Test
+	public void requestsStayWithinLimits() {
+		List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>();
+		entries.addAll(MessageChunker.toRequestEntries(randomBytes(6 * MessageChunker.MAX_RECORD_BYTES),
+				PARTITION_KEY, HASH_KEY, true));
+		for (int i = 0; i < 600; i++) {
+			entries.addAll(MessageChunker.toRequestEntries(new byte[10], PARTITION_KEY, HASH_KEY, true));
+		}
+		List<List<PutRecordsRequestEntry>> requests = MessageChunker.partitionRequests(entries);
+		int total = 0;
+		for (List<PutRecordsRequestEntry> request : requests) {
+			long bytes = 0;
+			for (PutRecordsRequestEntry entry : request) {
+				bytes += entry.getData().remaining() + PARTITION_KEY.length();
+			}
+			assertTrue(request.size() <= MessageChunker.MAX_RECORDS_PER_REQUEST);
+			assertTrue(bytes <= MessageChunker.MAX_REQUEST_BYTES);
+			total += request.size();
+		}
+		assertEquals(entries.size(), total);
+	}
+
+	private static ByteBuffer header(UUID messageId, int index, int chunkCount, String payload) {
+		byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(MessageChunker.HEADER_BYTES + payloadBytes.length);
+		buffer.putInt(MessageChunker.CHUNK_MARKER);
+		buffer.putLong(messageId.getMostSignificantBits());
+		buffer.putLong(messageId.getLeastSignificantBits());
+		buffer.putInt(index);
+		buffer.putInt(chunkCount);
+		buffer.put(payloadBytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+}
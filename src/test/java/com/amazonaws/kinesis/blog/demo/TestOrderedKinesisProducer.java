@@ -0,0 +1,227 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Test class for the per key ordering, retries and lane failures of
+ * OrderedKinesisProducer, against an in-memory AmazonKinesis.
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class TestOrderedKinesisProducer {
+
+	@Test
+	public void rejectedRecordIsRetriedBeforeNewerRecords() throws Exception {
+		// reject record a1 the first time it is sent
+		FakeKinesis fake = new FakeKinesis(new Predicate<String>() {
+			private boolean rejected = false;
+
+			@Override
+			public boolean test(String record) {
+				if (record.equals("a1") && !rejected) {
+					rejected = true;
+					return true;
+				}
+				return false;
+			}
+		});
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 4, false, 10, 1, 10);
+		for (int i = 1; i <= 3; i++) {
+			producer.addRecordForKey("a", "a" + i);
+			producer.addRecordForKey("b", "b" + i);
+		}
+		producer.close();
+
+		assertEquals(Arrays.asList("a1", "a2", "a3"), fake.writtenByKey.get("a"));
+		assertEquals(Arrays.asList("b1", "b2", "b3"), fake.writtenByKey.get("b"));
+		for (List<String> request : fake.requests) {
+			assertTrue("more than one record of a key in a request: " + request,
+					!(request.contains("a1") && request.contains("a2")));
+		}
+	}
+
+	@Test
+	public void laneFailsAfterRetries() throws Exception {
+		FakeKinesis fake = new FakeKinesis(record -> record.startsWith("b"));
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 2, false, 3, 1, 10);
+		for (int i = 1; i <= 3; i++) {
+			producer.addRecordForKey("a", "a" + i);
+			producer.addRecordForKey("b", "b" + i);
+		}
+		try {
+			producer.flush();
+			fail("flush should report the failed lane");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("[b]"));
+		}
+		assertEquals(Arrays.asList("a1", "a2", "a3"), fake.writtenByKey.get("a"));
+		// the first record was sent once and retried 3 times, the others never
+		int attempts = 0;
+		for (List<String> request : fake.requests) {
+			assertTrue(!request.contains("b2") && !request.contains("b3"));
+			attempts += Collections.frequency(request, "b1");
+		}
+		assertEquals(4, attempts);
+		try {
+			producer.addRecordForKey("b", "b4");
+			fail("records of a failed lane should be refused");
+		} catch (IllegalStateException expected) {
+		}
+		producer.addRecordForKey("a", "a4");
+		try {
+			producer.close();
+			fail("close should report the failed lane");
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(Arrays.asList("a1", "a2", "a3", "a4"), fake.writtenByKey.get("a"));
+	}
+
+	@Test
+	public void flushCompletesAndBatchesManyKeys() throws Exception {
+		FakeKinesis fake = new FakeKinesis(record -> false);
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 4);
+		for (int i = 0; i < 20; i++) {
+			for (int key = 0; key < 100; key++) {
+				producer.addRecordForShard(String.valueOf(key), key + ":" + i);
+			}
+		}
+		producer.flush();
+
+		int maxRequestSize = 0;
+		for (List<String> request : fake.requests) {
+			maxRequestSize = Math.max(maxRequestSize, request.size());
+		}
+		assertTrue(maxRequestSize > 1);
+		assertEquals(100, fake.writtenByKey.size());
+		for (int key = 0; key < 100; key++) {
+			List<String> written = fake.writtenByKey.get(String.valueOf(key));
+			assertEquals(20, written.size());
+			for (int i = 0; i < 20; i++) {
+				assertEquals(key + ":" + i, written.get(i));
+			}
+		}
+		producer.close();
+	}
+
+	@Test
+	public void recordsAreRefusedAfterClose() throws Exception {
+		FakeKinesis fake = new FakeKinesis(record -> false);
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 1);
+		producer.addRecordForKey("a", "a1");
+		producer.close();
+		try {
+			producer.addRecordForKey("a", "a2");
+			fail("records added after close should be refused");
+		} catch (IllegalStateException expected) {
+		}
+		// nothing is pending, so flush returns
+		producer.flush();
+		assertEquals(Arrays.asList("a1"), fake.writtenByKey.get("a"));
+	}
+
+	@Test
+	public void largeRecordIsWrittenAsConsecutiveChunks() throws Exception {
+		FakeKinesis fake = new FakeKinesis(record -> false);
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 4, true);
+		char[] large = new char[2 * MessageChunker.MAX_RECORD_BYTES + 100];
+		Arrays.fill(large, 'x');
+		String largeRecord = new String(large);
+		producer.addRecordForKey("a", "a1");
+		producer.addRecordForKey("a", largeRecord);
+		producer.addRecordForKey("a", "a3");
+		producer.close();
+
+		List<ByteBuffer> written = fake.dataByKey.get("a");
+		assertEquals(5, written.size());
+		MessageReassembler reassembler = new MessageReassembler(10);
+		assertEquals("a1", new String(reassembler.add(written.get(0)), StandardCharsets.UTF_8));
+		assertNull(reassembler.add(written.get(1)));
+		assertNull(reassembler.add(written.get(2)));
+		assertEquals(largeRecord, new String(reassembler.add(written.get(3)), StandardCharsets.UTF_8));
+		assertEquals("a3", new String(reassembler.add(written.get(4)), StandardCharsets.UTF_8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void largeRecordIsRefusedWithoutChunking() throws Exception {
+		FakeKinesis fake = new FakeKinesis(record -> false);
+		OrderedKinesisProducer producer = new OrderedKinesisProducer(fake.kinesis, "stream", 1);
+		try {
+			producer.addRecordForKey("a", new String(new char[MessageChunker.MAX_RECORD_BYTES]));
+		} finally {
+			producer.close();
+		}
+	}
+
+	/**
+	 * AmazonKinesis that records the PutRecords requests and rejects the records
+	 * matching a predicate with ProvisionedThroughputExceededException.
+	 */
+	private static class FakeKinesis {
+		private final Map<String, List<String>> writtenByKey = new HashMap<String, List<String>>();
+		private final Map<String, List<ByteBuffer>> dataByKey = new HashMap<String, List<ByteBuffer>>();
+		private final List<List<String>> requests = new ArrayList<List<String>>();
+		private final AmazonKinesis kinesis;
+
+		FakeKinesis(Predicate<String> reject) {
+			kinesis = (AmazonKinesis) Proxy.newProxyInstance(AmazonKinesis.class.getClassLoader(),
+					new Class<?>[] { AmazonKinesis.class }, (proxy, method, args) -> {
+						if (!method.getName().equals("putRecords")) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+						return putRecords((PutRecordsRequest) args[0], reject);
+					});
+		}
+
+		private synchronized PutRecordsResult putRecords(PutRecordsRequest request, Predicate<String> reject) {
+			List<String> records = new ArrayList<String>();
+			List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+			int failed = 0;
+			for (PutRecordsRequestEntry entry : request.getRecords()) {
+				String record = StandardCharsets.UTF_8.decode(entry.getData().duplicate()).toString();
+				records.add(record);
+				PutRecordsResultEntry result = new PutRecordsResultEntry();
+				if (reject.test(record)) {
+					result.setErrorCode("ProvisionedThroughputExceededException");
+					result.setErrorMessage("Rate exceeded");
+					failed++;
+				} else {
+					String key = entry.getExplicitHashKey() != null ? entry.getExplicitHashKey()
+							: entry.getPartitionKey();
+					writtenByKey.computeIfAbsent(key, k -> new ArrayList<String>()).add(record);
+					dataByKey.computeIfAbsent(key, k -> new ArrayList<ByteBuffer>()).add(entry.getData().duplicate());
+					result.setSequenceNumber(String.valueOf(records.size()));
+				}
+				results.add(result);
+			}
+			requests.add(records);
+			return new PutRecordsResult().withRecords(results).withFailedRecordCount(failed);
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+// Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: MIT-0
+
+package com.amazonaws.kinesis.blog.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Test class for the throttling penalties and retry steering of
+ * ShardAwareHashKeySelector.
+ *
+ * @author Ravi Itha, Amazon Web Service, Inc.
+ *
+ */
+public class TestShardAwareHashKeySelector {
+
+	private static final List<String> HASH_KEYS = Arrays.asList("0", "100", "200");
+	private static final long ONE_HOUR_MILLIS = 60 * 60 * 1000;
+
+	@Test
+	public void throttledKeyIsSkippedForAboutOneHalfLife() throws Exception {
+		long halfLifeMillis = 200;
+		ShardAwareHashKeySelector selector = new ShardAwareHashKeySelector(HASH_KEYS, halfLifeMillis, true);
+		throttle(selector, "0");
+		for (int i = 0; i < 3 * HASH_KEYS.size(); i++) {
+			assertFalse("0".equals(selector.next()));
+		}
+
+		// the penalty drops below the threshold after one half-life
+		Thread.sleep(2 * halfLifeMillis + 50);
+		Set<String> used = new HashSet<String>();
+		for (int i = 0; i < HASH_KEYS.size(); i++) {
+			used.add(selector.next());
+		}
+		assertEquals(new HashSet<String>(HASH_KEYS), used);
+	}
+
+	@Test
+	public void leastPenalizedKeyIsUsedWhenAllArePenalized() {
+		ShardAwareHashKeySelector selector = new ShardAwareHashKeySelector(HASH_KEYS, ONE_HOUR_MILLIS, true);
+		for (int i = 0; i < 3; i++) {
+			throttle(selector, "0");
+		}
+		throttle(selector, "100");
+		throttle(selector, "200");
+		throttle(selector, "200");
+		for (int i = 0; i < 5; i++) {
+			assertEquals("100", selector.next());
+		}
+	}
+
+	@Test
+	public void retryIsNotSteeredWhenDisabled() {
+		ShardAwareHashKeySelector selector = new ShardAwareHashKeySelector(HASH_KEYS, ONE_HOUR_MILLIS, false);
+		PutRecordsRequestEntry entry = entry("0");
+		throttle(selector, "0");
+		selector.steerRetry(entry);
+		assertEquals("0", entry.getExplicitHashKey());
+
+		ShardAwareHashKeySelector steering = new ShardAwareHashKeySelector(HASH_KEYS, ONE_HOUR_MILLIS, true);
+		throttle(steering, "0");
+		steering.steerRetry(entry);
+		assertTrue(!"0".equals(entry.getExplicitHashKey()));
+
+		// records routed by partition key keep their routing
+		PutRecordsRequestEntry keyed = entry(null);
+		steering.steerRetry(keyed);
+		assertNull(keyed.getExplicitHashKey());
+	}
+
+	private static void throttle(ShardAwareHashKeySelector selector, String hashKey) {
+		PutRecordsResultEntry result = new PutRecordsResultEntry();
+		result.setErrorCode("ProvisionedThroughputExceededException");
+		selector.recordOutcome(entry(hashKey), result);
+	}
+
+	private static PutRecordsRequestEntry entry(String hashKey) {
+		PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+		entry.setPartitionKey("pk");
+		entry.setExplicitHashKey(hashKey);
+		return entry;
+	}
+
+}